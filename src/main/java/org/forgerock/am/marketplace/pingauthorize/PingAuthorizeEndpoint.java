@@ -0,0 +1,130 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingauthorize;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health and latency statistics for a single PingAuthorize decision endpoint.
+ * <p>
+ * Latency is tracked as an exponentially weighted moving average (EWMA) and combined with the number of in-flight
+ * requests to give a load score. An endpoint is ejected after {@link #EJECTION_THRESHOLD} consecutive failures and is
+ * recovered passively: once {@link #EJECTION_NANOS} has elapsed a single live request is let through as a probe, and
+ * its result decides whether the endpoint rejoins the pool or stays ejected.
+ */
+final class PingAuthorizeEndpoint {
+
+    static final int EJECTION_THRESHOLD = 3;
+    static final long EJECTION_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final double EWMA_WEIGHT = 0.3;
+
+    private final String url;
+    private final AtomicLong ewmaLatencyNanos = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile boolean ejected;
+    private volatile long ejectedUntilNanos;
+
+    /**
+     * Creates the statistics holder for an endpoint.
+     *
+     * @param url The PingAuthorize endpoint URL.
+     */
+    PingAuthorizeEndpoint(String url) {
+        this.url = url;
+    }
+
+    /**
+     * The PingAuthorize endpoint URL.
+     *
+     * @return The endpoint URL.
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * Whether the endpoint is currently part of the healthy pool.
+     *
+     * @return true if the endpoint has not been ejected, otherwise false.
+     */
+    boolean isHealthy() {
+        return !ejected;
+    }
+
+    /**
+     * Claims the passive probe slot of an ejected endpoint whose ejection period has elapsed. Only one caller can
+     * hold the slot at a time.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return true if the caller should send its request to this endpoint as a probe, otherwise false.
+     */
+    boolean tryClaimProbe(long nowNanos) {
+        return ejected && nowNanos - ejectedUntilNanos >= 0 && probing.compareAndSet(false, true);
+    }
+
+    /**
+     * The load score used to compare two endpoints; lower is better. Endpoints without a latency sample yet score
+     * lowest so that they are tried early.
+     *
+     * @return The load score.
+     */
+    double score() {
+        return (ewmaLatencyNanos.get() + 1.0) * (inFlight.get() + 1);
+    }
+
+    /**
+     * Marks the start of a request to this endpoint.
+     */
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records a successful request, updating the latency average and returning the endpoint to the healthy pool.
+     *
+     * @param latencyNanos The request latency.
+     */
+    void recordSuccess(long latencyNanos) {
+        inFlight.decrementAndGet();
+        ewmaLatencyNanos.updateAndGet(previous -> previous == 0
+                ? latencyNanos
+                : (long) (EWMA_WEIGHT * latencyNanos + (1 - EWMA_WEIGHT) * previous));
+        consecutiveFailures.set(0);
+        ejected = false;
+        probing.set(false);
+    }
+
+    /**
+     * Records a request that ended without a valid answer from the endpoint, such as an unexpected error, leaving the
+     * endpoint's health and latency average unchanged.
+     */
+    void requestAbandoned() {
+        inFlight.decrementAndGet();
+        probing.set(false);
+    }
+
+    /**
+     * Records a failed request, ejecting the endpoint once the consecutive failure threshold is reached or when a
+     * probe fails.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}.
+     */
+    void recordFailure(long nowNanos) {
+        inFlight.decrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= EJECTION_THRESHOLD || ejected) {
+            ejectedUntilNanos = nowNanos + EJECTION_NANOS;
+            ejected = true;
+        }
+        probing.set(false);
+    }
+}
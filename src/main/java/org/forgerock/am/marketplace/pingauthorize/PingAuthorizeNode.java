@@ -8,6 +8,7 @@
 package org.forgerock.am.marketplace.pingauthorize;
 
 import com.google.inject.assistedinject.Assisted;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
@@ -19,18 +20,27 @@ import org.forgerock.openam.auth.node.api.NodeState;
 import org.forgerock.openam.auth.node.api.OutputState;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.util.i18n.PreferredLocales;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.UUID;
 
 import static java.util.Collections.emptyList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeNode.OutcomeProvider.*;
 
 /**
@@ -49,7 +59,10 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
     // Attribute keys
     public static final String STATEMENTCODESATTR = "statementCodes";
     public static final String USECONTINUEATTR = "useContinue";
+    public static final String RATELIMITATTR = "rateLimitPerSecond";
     public static final String STATEMENT_KEY = "statements";
+    public static final String DECISION_MEMO_KEY = "pingAuthorizeDecisions";
+    private static final int MAX_MEMOIZED_DECISIONS = 8;
 
     // Outcomes
     private static final String PERMIT = "PERMIT";
@@ -57,8 +70,22 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
     private static final String INDETERMINATE = "INDETERMINATE";
 
     private final Config config;
+    private final Realm realm;
+    private final UUID nodeId;
     private final PingAuthorizeService client;
 
+    /**
+     * What the node does when a decision request exceeds its rate limit.
+     */
+    public enum ThrottleBehavior {
+        /** Route to the Throttled outcome. */
+        THROTTLE,
+        /** Reuse an identical decision made earlier in this journey, or route to the Throttled outcome. */
+        CACHE,
+        /** Wait up to the maximum wait time for the rate limit to allow the request. */
+        WAIT
+    }
+
     /**
      * Configuration for the node.
      */
@@ -71,6 +98,16 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
         @Attribute(order = 100, requiredValue = true)
         String endpointUrl();
 
+        /**
+         * Additional Endpoint URLs serving the same decision policy, used for load balancing and failover.
+         *
+         * @return List of additional Endpoint URLs if they are provided; otherwise, it returns an empty list.
+         */
+        @Attribute(order = 150)
+        default List<String> additionalEndpointUrls() {
+            return emptyList();
+        }
+
         /**
          * A shared state attribute containing the Access Token.
          *
@@ -106,17 +143,86 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
         default boolean useContinue() {
             return false;
         }
+
+        /**
+         * The maximum number of decision requests per second, shared by all PingAuthorize nodes in the realm. When
+         * nodes in the realm are configured with different rates, the lowest rate applies.
+         *
+         * @return The rate limit, or 0 if decision requests are not rate limited.
+         */
+        @Attribute(order = 600)
+        default int rateLimitPerSecond() {
+            return 0;
+        }
+
+        /**
+         * Applies the rate limit to this node alone instead of setting the realm rate. The node's requests still count
+         * against the realm rate limit.
+         *
+         * @return true if the rate limit applies to this node only, otherwise false.
+         */
+        @Attribute(order = 700)
+        default boolean nodeRateLimit() {
+            return false;
+        }
+
+        /**
+         * What the node does when the rate limit is exceeded.
+         *
+         * @return The throttle behavior.
+         */
+        @Attribute(order = 800)
+        default ThrottleBehavior throttleBehavior() {
+            return ThrottleBehavior.THROTTLE;
+        }
+
+        /**
+         * The maximum time to wait for the rate limit when the throttle behavior is {@link ThrottleBehavior#WAIT}.
+         *
+         * @return The maximum wait time in milliseconds.
+         */
+        @Attribute(order = 900)
+        default int throttleMaxWaitMillis() {
+            return 100;
+        }
+
+        /**
+         * A secondary Endpoint URL that receives a copy of each decision request in the background, so that its
+         * decisions can be compared with the primary ones without affecting the journey.
+         *
+         * @return The shadow Endpoint URL, or an empty string if shadow evaluation is disabled.
+         */
+        @Attribute(order = 1000)
+        default String shadowEndpointUrl() {
+            return "";
+        }
+
+        /**
+         * Reuses the decision of an earlier PingAuthorize node in the same journey when it evaluated the same
+         * endpoints with the same access token and attribute values.
+         *
+         * @return true if decisions are memoized for the journey, otherwise false.
+         */
+        @Attribute(order = 1100)
+        default boolean memoizeDecisions() {
+            return false;
+        }
     }
 
     /**
      * The PingAuthorize node constructor.
      *
      * @param config               the node configuration.
+     * @param realm                the realm the node is in.
+     * @param nodeId               the node instance id.
      * @param client               the {@link PingAuthorizeService} instance.
      */
     @Inject
-    public PingAuthorizeNode(@Assisted Config config, PingAuthorizeService client) {
+    public PingAuthorizeNode(@Assisted Config config, @Assisted Realm realm, @Assisted UUID nodeId,
+                             PingAuthorizeService client) {
         this.config = config;
+        this.realm = realm;
+        this.nodeId = nodeId;
         this.client = client;
     }
 
@@ -134,15 +240,59 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
             parameters.put(key, nodeState.get(key));;
         }
 
+        // The primary endpoint followed by any additional endpoints; the service balances across them and only
+        // uses this order as the fallback when every endpoint is ejected
+        List<String> endpointUrls = new ArrayList<>();
+        endpointUrls.add(config.endpointUrl());
+        endpointUrls.addAll(config.additionalEndpointUrls());
+
         try {
-            // Create and send API call
-            JsonValue response = client.pingAZEvaluateDecisionRequest(
-                    config.endpointUrl(),
-                    accessToken,
-                    parameters);
+            // A digest of the request identifies an earlier identical decision in this journey
+            boolean recordDecision = recordsDecisions();
+            String endpointKey = String.join(",", endpointUrls);
+            String requestDigest = recordDecision ? requestDigest(endpointKey, accessToken, parameters) : null;
+
+            JsonValue response = config.memoizeDecisions()
+                    ? memoizedDecision(nodeState, requestDigest)
+                    : null;
+            if (response != null) {
+                logger.debug(loggerPrefix + "Reusing decision made earlier in the journey");
+                nodeState.putTransient("decision", response);
+            } else if (acquireRateLimitPermit()) {
+                // Create and send API call
+                long start = System.nanoTime();
+                response = client.pingAZEvaluateDecisionRequest(
+                        endpointUrls,
+                        accessToken,
+                        parameters);
+                long latencyNanos = System.nanoTime() - start;
+
+                // Retrieve API response
+                nodeState.putTransient("decision", response);
+                if (recordDecision && isConclusive(response)) {
+                    memoizeDecision(nodeState, requestDigest, response);
+                }
 
-            // Retrieve API response
-            nodeState.putTransient("decision", response);
+                // Compare against the shadow endpoint off the journey's path
+                if (StringUtils.isNotBlank(config.shadowEndpointUrl())) {
+                    client.submitShadowDecisionRequest(
+                            config.shadowEndpointUrl(),
+                            accessToken,
+                            parameters,
+                            response,
+                            latencyNanos);
+                }
+            } else {
+                // Over the rate limit, reuse an identical decision from this journey if allowed to
+                response = config.throttleBehavior() == ThrottleBehavior.CACHE
+                        ? memoizedDecision(nodeState, requestDigest)
+                        : null;
+                if (response == null) {
+                    logger.debug(loggerPrefix + "Decision request throttled by rate limit");
+                    return Action.goTo(THROTTLED_OUTCOME_ID).build();
+                }
+                nodeState.putTransient("decision", response);
+            }
 
             // Retrieves the "code" value from the "statements" object inside the API response body
             String statementCode = response.get(STATEMENT_KEY).get(0).get("code").asString();
@@ -177,6 +327,132 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
         }
     }
 
+    /**
+     * Whether this node records its decisions in the journey for later reuse.
+     *
+     * @return true if decisions are recorded, otherwise false.
+     */
+    private boolean recordsDecisions() {
+        return config.memoizeDecisions() || config.throttleBehavior() == ThrottleBehavior.CACHE;
+    }
+
+    /**
+     * Whether a decision may be reused later in the journey. Only PERMIT and DENY are reused, so that a retry after
+     * an INDETERMINATE decision makes a fresh request.
+     *
+     * @param response The decision response.
+     * @return true if the decision is PERMIT or DENY, otherwise false.
+     */
+    private boolean isConclusive(JsonValue response) {
+        String decision = response.get("decision").asString();
+        return PERMIT.equals(decision) || DENY.equals(decision);
+    }
+
+    /**
+     * Computes a compact digest of everything that determines a decision: the endpoints, the access token and the
+     * attribute values.
+     *
+     * @param endpointKey The configured endpoints.
+     * @param accessToken The access token.
+     * @param parameters  The decision attributes.
+     * @return The URL-safe Base64 encoded SHA-256 digest.
+     * @throws NoSuchAlgorithmException If SHA-256 is not available.
+     */
+    private String requestDigest(String endpointKey, String accessToken, JsonValue parameters)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(endpointKey.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(String.valueOf(accessToken).getBytes(StandardCharsets.UTF_8));
+        // Attribute names are sorted so that nodes listing the same attributes in a different order match
+        config.attributeMap().stream().sorted().forEach(key -> {
+            digest.update((byte) 0);
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(parameters.get(key)).getBytes(StandardCharsets.UTF_8));
+        });
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    /**
+     * Looks up a decision recorded earlier in this journey for an identical request.
+     *
+     * @param nodeState     The node state.
+     * @param requestDigest The digest of the current request.
+     * @return The decision rebuilt from its decision value and statement codes, or null if no decision was recorded
+     * for this request.
+     */
+    private JsonValue memoizedDecision(NodeState nodeState, String requestDigest) {
+        JsonValue decisions = nodeState.get(DECISION_MEMO_KEY);
+        if (decisions == null || !decisions.isList()) {
+            return null;
+        }
+        for (JsonValue entry : decisions) {
+            if (requestDigest.equals(entry.get("digest").asString())) {
+                JsonValue response = json(object(field("decision", entry.get("decision").asString())));
+                if (entry.isDefined(STATEMENTCODESATTR)) {
+                    List<Object> statements = new ArrayList<>();
+                    entry.get(STATEMENTCODESATTR).asList(String.class)
+                            .forEach(code -> statements.add(object(field("code", code))));
+                    response.put(STATEMENT_KEY, statements);
+                }
+                return response;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a decision in the journey under the digest of its request. Only the decision value and the statement
+     * codes, which are all the node routes on, are kept, and only for the most recent
+     * {@link #MAX_MEMOIZED_DECISIONS} requests, so that the shared state stays small.
+     *
+     * @param nodeState     The node state.
+     * @param requestDigest The digest of the request.
+     * @param response      The decision response.
+     */
+    private void memoizeDecision(NodeState nodeState, String requestDigest, JsonValue response) {
+        List<Object> decisions = new ArrayList<>();
+        JsonValue existing = nodeState.get(DECISION_MEMO_KEY);
+        if (existing != null && existing.isList()) {
+            for (JsonValue entry : existing.copy()) {
+                if (!requestDigest.equals(entry.get("digest").asString())) {
+                    decisions.add(entry.getObject());
+                }
+            }
+        }
+        JsonValue entry = json(object(
+                field("digest", requestDigest),
+                field("decision", response.get("decision").asString())));
+        if (response.get(STATEMENT_KEY).isList()) {
+            List<Object> statementCodes = new ArrayList<>();
+            response.get(STATEMENT_KEY).forEach(statement -> statementCodes.add(statement.get("code").asString()));
+            entry.put(STATEMENTCODESATTR, statementCodes);
+        }
+        decisions.add(entry.getObject());
+        if (decisions.size() > MAX_MEMOIZED_DECISIONS) {
+            decisions = new ArrayList<>(decisions.subList(decisions.size() - MAX_MEMOIZED_DECISIONS,
+                                                          decisions.size()));
+        }
+        nodeState.putShared(DECISION_MEMO_KEY, decisions);
+    }
+
+    /**
+     * Takes a permit from the rate limit of the realm, and first from the node's own rate limit if it has one.
+     *
+     * @return true if the decision request may be sent, otherwise false.
+     */
+    private boolean acquireRateLimitPermit() {
+        int permitsPerSecond = config.rateLimitPerSecond();
+        if (permitsPerSecond <= 0) {
+            return true;
+        }
+        String realmKey = realm.asPath();
+        String nodeKey = config.nodeRateLimit() ? realmKey + "#" + nodeId : null;
+        long maxWaitMillis = config.throttleBehavior() == ThrottleBehavior.WAIT ? config.throttleMaxWaitMillis() : 0;
+        return client.acquireRateLimitPermit(realmKey, nodeKey, permitsPerSecond, maxWaitMillis);
+    }
+
     @Override
     public InputState[] getInputs() {
 
@@ -187,14 +463,24 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
         config.attributeMap().forEach(
             (v) -> inputs.add(new InputState(v, false)));
 
+        if (recordsDecisions()) {
+            inputs.add(new InputState(DECISION_MEMO_KEY, false));
+        }
+
         return inputs.toArray(new InputState[]{});
     }
 
     @Override
     public OutputState[] getOutputs() {
-        return new OutputState[]{
-            new OutputState("decision")
-        };
+        List<OutputState> outputs = new ArrayList<>();
+
+        outputs.add(new OutputState("decision"));
+
+        if (recordsDecisions()) {
+            outputs.add(new OutputState(DECISION_MEMO_KEY));
+        }
+
+        return outputs.toArray(new OutputState[]{});
     }
 
     public static class OutcomeProvider implements org.forgerock.openam.auth.node.api.OutcomeProvider {
@@ -204,6 +490,7 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
         static final String INDETERMINATE_OUTCOME_ID = "indeterminate";
         static final String CONTINUE_OUTCOME_ID = "continue";
         static final String CLIENT_ERROR_OUTCOME_ID = "clientError";
+        static final String THROTTLED_OUTCOME_ID = "throttled";
 
         @Override
         public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes) throws NodeProcessException {
@@ -231,6 +518,11 @@ public class PingAuthorizeNode extends SingleOutcomeNode {
                                   .forEach(outcomes::add);
                 }
             }
+            // Only render the throttled outcome when a rate limit is configured
+            if (nodeAttributes.isNotNull() && nodeAttributes.get(RATELIMITATTR).isNotNull()
+                    && nodeAttributes.get(RATELIMITATTR).asInteger() > 0) {
+                outcomes.add(new Outcome(THROTTLED_OUTCOME_ID, bundle.getString(THROTTLED_OUTCOME_ID)));
+            }
             outcomes.add(new Outcome(CLIENT_ERROR_OUTCOME_ID, bundle.getString(CLIENT_ERROR_OUTCOME_ID)));
 
             return outcomes;
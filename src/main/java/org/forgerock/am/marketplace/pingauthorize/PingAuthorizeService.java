@@ -7,11 +7,25 @@
  */
 package org.forgerock.am.marketplace.pingauthorize;
 
+import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -26,6 +40,8 @@ import org.forgerock.http.protocol.Status;
 import org.forgerock.http.Handler;
 import org.forgerock.json.JsonValue;
 import org.forgerock.services.context.RootContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Service to integrate with PingOne Authorize APIs.
@@ -33,7 +49,29 @@ import org.forgerock.services.context.RootContext;
 @Singleton
 public class PingAuthorizeService {
 
+    private static final Logger logger = LoggerFactory.getLogger(PingAuthorizeService.class);
+    private static final String LOGGER_PREFIX = "[PingAuthorizeService]" + PingOneAuthorizePlugin.LOG_APPENDER;
+
     private final Handler handler;
+    private final ConcurrentMap<String, PingAuthorizeEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TokenBucket> rateLimits = new ConcurrentHashMap<>();
+
+    // Usage counters are summarised in the log at most once per interval, piggybacking on decision traffic
+    private static final long USAGE_SUMMARY_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private final AtomicLong nextUsageSummaryNanos = new AtomicLong(System.nanoTime() + USAGE_SUMMARY_INTERVAL_NANOS);
+
+    // Shadow evaluations run on a small bounded pool and are dropped rather than queued without limit
+    private static final int SHADOW_THREADS = 2;
+    private static final int SHADOW_QUEUE_SIZE = 256;
+    private static final int SHADOW_LOG_SAMPLE_RATE = 100;
+    private static final long SHADOW_SHUTDOWN_SECONDS = 5;
+    private final ThreadPoolExecutor shadowExecutor;
+    private final LongAdder shadowSubmitted = new LongAdder();
+    private final LongAdder shadowDropped = new LongAdder();
+    private final LongAdder shadowAgreed = new LongAdder();
+    private final AtomicLong shadowDisagreed = new AtomicLong();
+    private final LongAdder shadowFailed = new LongAdder();
+    private final LongAdder shadowLatencyDeltaNanos = new LongAdder();
 
     /**
      * Creates a new instance that will close the underlying HTTP client upon shutdown.
@@ -41,18 +79,371 @@ public class PingAuthorizeService {
     @Inject
     public PingAuthorizeService(@Named("CloseableHttpClientHandler") org.forgerock.http.Handler handler) {
         this.handler = handler;
+        this.shadowExecutor = new ThreadPoolExecutor(SHADOW_THREADS, SHADOW_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(SHADOW_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "PingAuthorize-shadow");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.shadowExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
      * the POST {{apiPath}}/governance-engine operation authorizes the client using an individual request.
+     * <p>
+     * The request is sent to one of the given endpoints, chosen by comparing the latency and in-flight load of two
+     * randomly sampled healthy endpoints. When the chosen endpoint fails to respond, or responds with a server error,
+     * the request fails over to the remaining endpoints before giving up. The order of the endpoints is only used as
+     * the fallback order when none of the remaining endpoints is healthy.
      *
-     * @param pingAZEndpoint    The PingAuthorize Endpoint
+     * @param pingAZEndpoints   The PingAuthorize Endpoints, in fallback order
      * @param accessToken       The Access Token
      * @param decisionData      The data for the Attributes object
      * @return Json containing the response from the operation
      * @throws PingAuthorizeServiceException When API response != 201
      */
     public JsonValue pingAZEvaluateDecisionRequest(
+        List<String> pingAZEndpoints,
+        String accessToken,
+        JsonValue decisionData) throws PingAuthorizeServiceException {
+
+        if (pingAZEndpoints == null || pingAZEndpoints.isEmpty()) {
+            throw new PingAuthorizeServiceException("No PingAuthorize endpoint configured.");
+        }
+
+        List<PingAuthorizeEndpoint> candidates = new ArrayList<>(pingAZEndpoints.size());
+        for (String url : pingAZEndpoints) {
+            candidates.add(endpoints.computeIfAbsent(url, PingAuthorizeEndpoint::new));
+        }
+
+        EndpointFailureException lastFailure = null;
+        while (!candidates.isEmpty()) {
+            PingAuthorizeEndpoint endpoint = selectEndpoint(candidates);
+            candidates.remove(endpoint);
+            endpoint.requestStarted();
+            long start = System.nanoTime();
+            try {
+                JsonValue response = sendDecisionRequest(endpoint.getUrl(), accessToken, decisionData);
+                endpoint.recordSuccess(System.nanoTime() - start);
+                return response;
+            } catch (EndpointFailureException e) {
+                endpoint.recordFailure(System.nanoTime());
+                logger.warn("{} Endpoint {} failed, {} endpoint(s) left to try: {}", LOGGER_PREFIX,
+                            endpoint.getUrl(), candidates.size(), e.getMessage());
+                lastFailure = e;
+            } catch (EndpointRejectedException e) {
+                // The endpoint answered, so it is healthy even though the request was rejected
+                endpoint.recordSuccess(System.nanoTime() - start);
+                throw e;
+            } catch (PingAuthorizeServiceException | RuntimeException e) {
+                // No valid answer from the endpoint, so leave its health unchanged
+                endpoint.requestAbandoned();
+                throw e;
+            }
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * Takes a permit from the decision rate limit of a realm, waiting up to the given time for one to become
+     * available.
+     * <p>
+     * Each realm has a single rate limit. Its rate is the lowest rate configured on any realm-wide node that has used
+     * it, so adding a node can never raise the realm's quota. A node with its own rate limit takes a permit from its
+     * own limit first and then from the realm limit, if the realm has one, so its traffic still counts against the
+     * realm quota without setting the realm rate.
+     *
+     * @param realmKey          The realm rate limit key, the realm path
+     * @param nodeKey           The rate limit key of a node with its own rate limit, or null for a realm-wide node
+     * @param permitsPerSecond  The number of decision requests allowed per second
+     * @param maxWaitMillis     The maximum time to wait for a permit, or 0 to not wait
+     * @return true if a permit was taken, otherwise false
+     */
+    public boolean acquireRateLimitPermit(String realmKey, String nodeKey, int permitsPerSecond, long maxWaitMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+        boolean acquired;
+        if (nodeKey == null) {
+            acquired = acquire(realmBucket(realmKey, permitsPerSecond), realmKey, deadline);
+        } else {
+            // The node's limit has a single owner, so it follows the node's configured rate
+            TokenBucket nodeBucket = rateLimits.compute(nodeKey, (key, current) ->
+                    current == null || current.getPermitsPerSecond() != permitsPerSecond
+                            ? new TokenBucket(permitsPerSecond)
+                            : current);
+            TokenBucket realmBucket = rateLimits.get(realmKey);
+            acquired = acquire(nodeBucket, nodeKey, deadline)
+                    && (realmBucket == null || acquire(realmBucket, realmKey, deadline));
+        }
+        logUsageSummaryIfDue();
+        return acquired;
+    }
+
+    /**
+     * Returns the rate limit of a realm, creating it on first use and lowering its rate when a realm-wide node is
+     * configured with a lower rate.
+     *
+     * @param realmKey          The realm path
+     * @param permitsPerSecond  The rate configured on the calling node
+     * @return The realm rate limit
+     */
+    private TokenBucket realmBucket(String realmKey, int permitsPerSecond) {
+        TokenBucket bucket = rateLimits.computeIfAbsent(realmKey, key -> new TokenBucket(permitsPerSecond));
+        if (bucket.lowerRate(permitsPerSecond)) {
+            logger.warn("{} PingAuthorize nodes in realm {} are configured with different rate limits, using the lowest"
+                        + " rate of {} decisions per second", LOGGER_PREFIX, realmKey, permitsPerSecond);
+        } else if (bucket.getPermitsPerSecond() != permitsPerSecond) {
+            logger.debug("{} Rate limit of {} decisions per second for realm {} is capped by the realm rate of {}",
+                         LOGGER_PREFIX, permitsPerSecond, realmKey, bucket.getPermitsPerSecond());
+        }
+        return bucket;
+    }
+
+    /**
+     * Takes a permit from a rate limit, waiting until the deadline for one to become available.
+     *
+     * @param bucket        The rate limit
+     * @param rateLimitKey  The rate limit key, for logging
+     * @param deadline      The {@link System#nanoTime()} after which to stop waiting
+     * @return true if a permit was taken, otherwise false
+     */
+    private boolean acquire(TokenBucket bucket, String rateLimitKey, long deadline) {
+        boolean acquired = false;
+        while (true) {
+            long now = System.nanoTime();
+            long waitNanos = bucket.tryAcquire(now);
+            if (waitNanos == 0) {
+                acquired = true;
+                break;
+            }
+            if (now + waitNanos - deadline > 0 || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            LockSupport.parkNanos(waitNanos);
+        }
+
+        bucket.recordUsage(acquired);
+        if (!acquired) {
+            logger.debug("{} Rate limit of {} decisions per second exceeded for {}", LOGGER_PREFIX,
+                         bucket.getPermitsPerSecond(), rateLimitKey);
+        }
+        return acquired;
+    }
+
+    /**
+     * Logs the usage counters when the summary interval has elapsed. Only one caller per interval logs.
+     */
+    private void logUsageSummaryIfDue() {
+        long now = System.nanoTime();
+        long due = nextUsageSummaryNanos.get();
+        if (now - due >= 0 && nextUsageSummaryNanos.compareAndSet(due, now + USAGE_SUMMARY_INTERVAL_NANOS)) {
+            logUsageSummary();
+        }
+    }
+
+    /**
+     * Logs the usage counters of the features that are in use.
+     */
+    private void logUsageSummary() {
+        if (!rateLimits.isEmpty()) {
+            logger.info("{} Decision rate limit usage: {}", LOGGER_PREFIX, getRateLimitUsage());
+        }
+        if (shadowSubmitted.sum() + shadowDropped.sum() > 0) {
+            logger.info("{} Shadow evaluation metrics: {}", LOGGER_PREFIX, getShadowEvaluationMetrics());
+        }
+    }
+
+    /**
+     * Stops the shadow evaluation executor, giving in-flight shadow requests a short time to finish so that none
+     * use the HTTP handler after it is closed, and logs the final usage counters.
+     */
+    public void shutdown() {
+        shadowExecutor.shutdown();
+        try {
+            if (!shadowExecutor.awaitTermination(SHADOW_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                shadowExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            shadowExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logUsageSummary();
+    }
+
+    /**
+     * Returns the usage counters of every decision rate limit, keyed by realm path, or by realm path and node id for
+     * nodes with their own rate limit, for capacity planning.
+     *
+     * @return Json containing the configured rate and the permitted and throttled counts of each rate limit
+     */
+    public JsonValue getRateLimitUsage() {
+        JsonValue usage = json(object(rateLimits.size()));
+        rateLimits.forEach((key, bucket) -> usage.put(key, object(
+                field("permitsPerSecond", bucket.getPermitsPerSecond()),
+                field("permitted", bucket.getPermitted()),
+                field("throttled", bucket.getThrottled()))));
+        return usage;
+    }
+
+    /**
+     * Sends a copy of a decision request to a shadow endpoint in the background and compares its decision with the
+     * primary one. The caller never waits for the shadow request, and the request is dropped if the background queue
+     * is full or the service has been shut down.
+     *
+     * @param shadowEndpoint        The shadow PingAuthorize Endpoint
+     * @param accessToken           The Access Token
+     * @param decisionData          The data for the Attributes object
+     * @param primaryResponse       The response from the primary endpoint
+     * @param primaryLatencyNanos   The latency of the primary request
+     */
+    public void submitShadowDecisionRequest(
+        String shadowEndpoint,
+        String accessToken,
+        JsonValue decisionData,
+        JsonValue primaryResponse,
+        long primaryLatencyNanos) {
+
+        // The background thread gets its own copies, so it shares no mutable state with the journey
+        JsonValue shadowData = decisionData.copy();
+        JsonValue primary = primaryResponse.copy();
+        try {
+            shadowExecutor.execute(() -> evaluateShadowDecision(
+                    shadowEndpoint, accessToken, shadowData, primary, primaryLatencyNanos));
+            shadowSubmitted.increment();
+        } catch (RejectedExecutionException e) {
+            shadowDropped.increment();
+        }
+        logUsageSummaryIfDue();
+    }
+
+    /**
+     * Returns the shadow evaluation counters.
+     *
+     * @return Json containing the submitted, dropped, agreed, disagreed and failed counts, and the mean latency of
+     * the shadow endpoint relative to the primary one in milliseconds
+     */
+    public JsonValue getShadowEvaluationMetrics() {
+        long agreed = shadowAgreed.sum();
+        long disagreed = shadowDisagreed.get();
+        long compared = agreed + disagreed;
+        return json(object(
+                field("submitted", shadowSubmitted.sum()),
+                field("dropped", shadowDropped.sum()),
+                field("agreed", agreed),
+                field("disagreed", disagreed),
+                field("failed", shadowFailed.sum()),
+                field("meanLatencyDeltaMillis", compared == 0
+                        ? 0.0
+                        : shadowLatencyDeltaNanos.sum() / (double) compared / TimeUnit.MILLISECONDS.toNanos(1))));
+    }
+
+    /**
+     * Sends the shadow decision request and records how it compares with the primary decision.
+     *
+     * @param shadowEndpoint        The shadow PingAuthorize Endpoint
+     * @param accessToken           The Access Token
+     * @param decisionData          The data for the Attributes object
+     * @param primaryResponse       The response from the primary endpoint
+     * @param primaryLatencyNanos   The latency of the primary request
+     */
+    private void evaluateShadowDecision(
+        String shadowEndpoint,
+        String accessToken,
+        JsonValue decisionData,
+        JsonValue primaryResponse,
+        long primaryLatencyNanos) {
+
+        long start = System.nanoTime();
+        JsonValue shadowResponse;
+        try {
+            shadowResponse = sendDecisionRequest(shadowEndpoint, accessToken, decisionData);
+        } catch (PingAuthorizeServiceException | RuntimeException e) {
+            shadowFailed.increment();
+            logger.debug("{} Shadow decision request to {} failed: {}", LOGGER_PREFIX, shadowEndpoint,
+                         e.getMessage());
+            return;
+        }
+        long latencyDeltaNanos = System.nanoTime() - start - primaryLatencyNanos;
+        shadowLatencyDeltaNanos.add(latencyDeltaNanos);
+
+        String primaryDecision = primaryResponse.get("decision").asString();
+        String shadowDecision = shadowResponse.get("decision").asString();
+        List<Object> primaryStatements = statementCodes(primaryResponse);
+        List<Object> shadowStatements = statementCodes(shadowResponse);
+        if (Objects.equals(primaryDecision, shadowDecision) && primaryStatements.equals(shadowStatements)) {
+            shadowAgreed.increment();
+            return;
+        }
+
+        // Log the first disagreement and then one in every SHADOW_LOG_SAMPLE_RATE
+        if (shadowDisagreed.incrementAndGet() % SHADOW_LOG_SAMPLE_RATE == 1) {
+            logger.info("{} Shadow endpoint {} disagreed with primary: decision {} vs {}, statements {} vs {},"
+                        + " latency delta {} ms", LOGGER_PREFIX, shadowEndpoint, primaryDecision, shadowDecision,
+                        primaryStatements, shadowStatements, TimeUnit.NANOSECONDS.toMillis(latencyDeltaNanos));
+        }
+    }
+
+    /**
+     * Extracts the statement codes of a decision response.
+     *
+     * @param response  The decision response
+     * @return The statement codes, in response order
+     */
+    private static List<Object> statementCodes(JsonValue response) {
+        List<Object> codes = new ArrayList<>();
+        for (JsonValue statement : response.get("statements")) {
+            codes.add(statement.get("code").getObject());
+        }
+        return codes;
+    }
+
+    /**
+     * Chooses the endpoint for the next attempt. An ejected endpoint that is due for a passive probe takes priority;
+     * otherwise two healthy endpoints are sampled and the one with the lower load score wins. When no endpoint is
+     * healthy the first remaining endpoint in configuration order is used, so that a request is still attempted.
+     *
+     * @param candidates The endpoints not yet tried for this request.
+     * @return The selected endpoint.
+     */
+    private PingAuthorizeEndpoint selectEndpoint(List<PingAuthorizeEndpoint> candidates) {
+        long now = System.nanoTime();
+        List<PingAuthorizeEndpoint> healthy = new ArrayList<>(candidates.size());
+        for (PingAuthorizeEndpoint candidate : candidates) {
+            if (candidate.tryClaimProbe(now)) {
+                return candidate;
+            }
+            if (candidate.isHealthy()) {
+                healthy.add(candidate);
+            }
+        }
+        if (healthy.isEmpty()) {
+            return candidates.get(0);
+        }
+        if (healthy.size() == 1) {
+            return healthy.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(healthy.size());
+        int second = random.nextInt(healthy.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        PingAuthorizeEndpoint a = healthy.get(first);
+        PingAuthorizeEndpoint b = healthy.get(second);
+        return a.score() <= b.score() ? a : b;
+    }
+
+    /**
+     * Sends the decision request to a single endpoint.
+     *
+     * @param pingAZEndpoint    The PingAuthorize Endpoint
+     * @param accessToken       The Access Token
+     * @param decisionData      The data for the Attributes object
+     * @return Json containing the response from the operation
+     * @throws EndpointFailureException When the endpoint is unreachable or responds with a server error
+     * @throws EndpointRejectedException When the endpoint responds with a client error
+     * @throws PingAuthorizeServiceException When API response != 201
+     */
+    private JsonValue sendDecisionRequest(
         String pingAZEndpoint,
         String accessToken,
         JsonValue decisionData) throws PingAuthorizeServiceException {
@@ -75,12 +466,22 @@ public class PingAuthorizeService {
             Response response = handler.handle(new RootContext(), request).getOrThrow();
             if (response.getStatus() == Status.CREATED || response.getStatus() == Status.OK) {
                 return json(response.getEntity().getJson());
+            } else if (response.getStatus().isServerError()) {
+                throw new EndpointFailureException("PingAuthorize API response with error."
+                                                   + response.getStatus()
+                                                   + "-" + response.getEntity().getString());
+            } else if (response.getStatus().isClientError()) {
+                throw new EndpointRejectedException("PingAuthorize API response with error."
+                                                    + response.getStatus()
+                                                    + "-" + response.getEntity().getString());
             } else {
                 throw new PingAuthorizeServiceException("PingAuthorize API response with error."
                                                         + response.getStatus()
                                                         + "-" + response.getEntity().getString());
             }
-        } catch (MalformedHeaderException | InterruptedException | IOException e) {
+        } catch (IOException e) {
+            throw new EndpointFailureException("Failed to process client authorization" + e);
+        } catch (MalformedHeaderException | InterruptedException e) {
             throw new PingAuthorizeServiceException("Failed to process client authorization" + e);
         }
     }
@@ -98,4 +499,24 @@ public class PingAuthorizeService {
         header.setRawValue(BearerToken.NAME + " " + bearerToken.getToken());
         request.addHeaders(header);
     }
+
+    /**
+     * Signals that an endpoint could not serve a request and that the request may be retried elsewhere.
+     */
+    private static final class EndpointFailureException extends PingAuthorizeServiceException {
+
+        EndpointFailureException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Signals that an endpoint answered a request with a client error, so the request must not be retried.
+     */
+    private static final class EndpointRejectedException extends PingAuthorizeServiceException {
+
+        EndpointRejectedException(String message) {
+            super(message);
+        }
+    }
 }
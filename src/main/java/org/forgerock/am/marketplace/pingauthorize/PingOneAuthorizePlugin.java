@@ -9,6 +9,7 @@
 package org.forgerock.am.marketplace.pingauthorize;
 
 import java.util.Map;
+import javax.inject.Inject;
 
 import com.google.common.collect.ImmutableMap;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
@@ -50,11 +51,23 @@ import static java.util.Arrays.asList;
  * @since AM 5.5.0
  */
 public class PingOneAuthorizePlugin extends AbstractNodeAmPlugin {
-    protected static final String CURRENT_VERSION = "1.0.0";
+    protected static final String CURRENT_VERSION = "1.1.0";
     protected static final String LOG_APPENDER = "[Version: " + CURRENT_VERSION + "][Marketplace] ";
     private static final Logger logger = LoggerFactory.getLogger(PingOneAuthorizePlugin.class);
     private static final String LOGGER_PREFIX = "[PingOneAuthorizePlugin]" + PingOneAuthorizePlugin.LOG_APPENDER;
 
+    private PingAuthorizeService pingAuthorizeService;
+
+    /**
+     * Sets the {@link PingAuthorizeService} so that its background work can be stopped on shutdown.
+     *
+     * @param pingAuthorizeService The PingAuthorize service.
+     */
+    @Inject
+    public void setPingAuthorizeService(PingAuthorizeService pingAuthorizeService) {
+        this.pingAuthorizeService = pingAuthorizeService;
+    }
+
     /**
      * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
      *  registered at the appropriate times in plugin lifecycle.
@@ -64,7 +77,7 @@ public class PingOneAuthorizePlugin extends AbstractNodeAmPlugin {
     @Override
     protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
         return new ImmutableMap.Builder<String, Iterable<? extends Class<? extends Node>>>()
-            .put("1.0.0", asList(PingAuthorizeNode.class))
+            .put(CURRENT_VERSION, asList(PingAuthorizeNode.class))
             .build();
     }
 
@@ -99,4 +112,15 @@ public class PingOneAuthorizePlugin extends AbstractNodeAmPlugin {
         }
         super.upgrade(fromVersion);
     }
-}
\ No newline at end of file
+
+    /**
+     * Stops the shadow evaluation work of the {@link PingAuthorizeService} before AM shuts down.
+     */
+    @Override
+    public void onShutdown() {
+        if (pingAuthorizeService != null) {
+            pingAuthorizeService.shutdown();
+        }
+        super.onShutdown();
+    }
+}
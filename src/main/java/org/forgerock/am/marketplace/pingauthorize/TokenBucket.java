@@ -0,0 +1,149 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingauthorize;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free token bucket that refills at a fixed rate and holds up to one second's worth of permits.
+ * <p>
+ * The bucket is kept as a single timestamp: the number of available permits is the time elapsed since that timestamp
+ * divided by the refill interval, capped at the capacity. Taking a permit advances the timestamp by one interval, so
+ * acquiring is a single compare-and-set and no refill timer is needed.
+ * <p>
+ * The rate can only be lowered. Since the capacity is always one second's worth of permits, lowering the rate keeps
+ * the timestamp meaningful: a bucket that was full stays full, and one that was empty stays empty.
+ */
+final class TokenBucket {
+
+    private final AtomicReference<Rate> rate;
+    private final AtomicLong emptySinceNanos;
+    private final LongAdder permitted = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param permitsPerSecond The refill rate, which is also the bucket capacity.
+     */
+    TokenBucket(int permitsPerSecond) {
+        this(permitsPerSecond, System.nanoTime());
+    }
+
+    /**
+     * Creates a bucket that is full at the given time.
+     *
+     * @param permitsPerSecond The refill rate, which is also the bucket capacity.
+     * @param nowNanos         The current {@link System#nanoTime()}.
+     */
+    TokenBucket(int permitsPerSecond, long nowNanos) {
+        Rate initial = new Rate(permitsPerSecond);
+        this.rate = new AtomicReference<>(initial);
+        this.emptySinceNanos = new AtomicLong(nowNanos - initial.capacityNanos);
+    }
+
+    /**
+     * The refill rate of the bucket.
+     *
+     * @return The number of permits added per second.
+     */
+    int getPermitsPerSecond() {
+        return rate.get().permitsPerSecond;
+    }
+
+    /**
+     * Lowers the refill rate of the bucket. A rate that is not lower than the current one is ignored.
+     *
+     * @param permitsPerSecond The new refill rate.
+     * @return true if the rate was lowered, otherwise false.
+     */
+    boolean lowerRate(int permitsPerSecond) {
+        while (true) {
+            Rate current = rate.get();
+            if (permitsPerSecond >= current.permitsPerSecond) {
+                return false;
+            }
+            if (rate.compareAndSet(current, new Rate(permitsPerSecond))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a permit if one is available.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return 0 if a permit was taken; otherwise the number of nanoseconds until the next permit becomes available.
+     */
+    long tryAcquire(long nowNanos) {
+        while (true) {
+            Rate current = rate.get();
+            long emptySince = emptySinceNanos.get();
+            long fullSince = nowNanos - current.capacityNanos;
+            long base = emptySince - fullSince > 0 ? emptySince : fullSince;
+            long next = base + current.intervalNanos;
+            long waitNanos = next - nowNanos;
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            if (emptySinceNanos.compareAndSet(emptySince, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Records the final result of a permit request in the usage counters.
+     *
+     * @param acquired Whether the permit was granted.
+     */
+    void recordUsage(boolean acquired) {
+        if (acquired) {
+            permitted.increment();
+        } else {
+            throttled.increment();
+        }
+    }
+
+    /**
+     * The number of permits granted since the bucket was created.
+     *
+     * @return The permitted count.
+     */
+    long getPermitted() {
+        return permitted.sum();
+    }
+
+    /**
+     * The number of permits refused since the bucket was created.
+     *
+     * @return The throttled count.
+     */
+    long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * A refill rate with its derived interval and capacity. Rates above one permit per nanosecond are capped at that.
+     */
+    private static final class Rate {
+
+        private final int permitsPerSecond;
+        private final long intervalNanos;
+        private final long capacityNanos;
+
+        Rate(int permitsPerSecond) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            this.capacityNanos = intervalNanos * permitsPerSecond;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2024 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package org.forgerock.am.marketplace.pingauthorize;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeEndpoint.EJECTION_NANOS;
+import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeEndpoint.EJECTION_THRESHOLD;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class PingAuthorizeEndpointTest {
+
+    private static final long NOW = 1_000L;
+
+    PingAuthorizeEndpoint endpoint;
+
+    @BeforeEach
+    public void setup() {
+        endpoint = new PingAuthorizeEndpoint("some-endpoint-url");
+    }
+
+    @Test
+    public void testEjectedAfterConsecutiveFailures() {
+        fail(EJECTION_THRESHOLD - 1, NOW);
+        assertThat(endpoint.isHealthy()).isTrue();
+
+        fail(1, NOW);
+        assertThat(endpoint.isHealthy()).isFalse();
+    }
+
+    @Test
+    public void testSuccessResetsConsecutiveFailures() {
+        fail(EJECTION_THRESHOLD - 1, NOW);
+        endpoint.requestStarted();
+        endpoint.recordSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+        fail(EJECTION_THRESHOLD - 1, NOW);
+
+        assertThat(endpoint.isHealthy()).isTrue();
+    }
+
+    @Test
+    public void testProbeClaimedOnceAfterEjectionPeriod() {
+        fail(EJECTION_THRESHOLD, NOW);
+
+        assertThat(endpoint.tryClaimProbe(NOW + EJECTION_NANOS - 1)).isFalse();
+        assertThat(endpoint.tryClaimProbe(NOW + EJECTION_NANOS)).isTrue();
+        assertThat(endpoint.tryClaimProbe(NOW + EJECTION_NANOS)).isFalse();
+    }
+
+    @Test
+    public void testHealthyEndpointIsNeverProbed() {
+        assertThat(endpoint.tryClaimProbe(NOW + EJECTION_NANOS)).isFalse();
+    }
+
+    @Test
+    public void testSuccessfulProbeRecoversEndpoint() {
+        fail(EJECTION_THRESHOLD, NOW);
+        long probeTime = NOW + EJECTION_NANOS;
+        assertThat(endpoint.tryClaimProbe(probeTime)).isTrue();
+
+        endpoint.requestStarted();
+        endpoint.recordSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+
+        assertThat(endpoint.isHealthy()).isTrue();
+        assertThat(endpoint.tryClaimProbe(probeTime)).isFalse();
+    }
+
+    @Test
+    public void testFailedProbeExtendsEjection() {
+        fail(EJECTION_THRESHOLD, NOW);
+        long probeTime = NOW + EJECTION_NANOS;
+        assertThat(endpoint.tryClaimProbe(probeTime)).isTrue();
+
+        fail(1, probeTime);
+
+        assertThat(endpoint.isHealthy()).isFalse();
+        assertThat(endpoint.tryClaimProbe(probeTime + EJECTION_NANOS - 1)).isFalse();
+        assertThat(endpoint.tryClaimProbe(probeTime + EJECTION_NANOS)).isTrue();
+    }
+
+    @Test
+    public void testAbandonedProbeReleasesSlotWithoutRecovering() {
+        fail(EJECTION_THRESHOLD, NOW);
+        long probeTime = NOW + EJECTION_NANOS;
+        assertThat(endpoint.tryClaimProbe(probeTime)).isTrue();
+
+        endpoint.requestStarted();
+        endpoint.requestAbandoned();
+
+        assertThat(endpoint.isHealthy()).isFalse();
+        assertThat(endpoint.tryClaimProbe(probeTime)).isTrue();
+    }
+
+    @Test
+    public void testScoreCombinesLatencyAndInFlight() {
+        PingAuthorizeEndpoint fast = new PingAuthorizeEndpoint("fast-endpoint-url");
+        PingAuthorizeEndpoint slow = new PingAuthorizeEndpoint("slow-endpoint-url");
+        fast.requestStarted();
+        fast.recordSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+        slow.requestStarted();
+        slow.recordSuccess(TimeUnit.MILLISECONDS.toNanos(20));
+
+        assertThat(fast.score()).isLessThan(slow.score());
+
+        // Two requests in flight on the fast endpoint outweigh its lower latency
+        fast.requestStarted();
+        fast.requestStarted();
+        assertThat(fast.score()).isGreaterThan(slow.score());
+    }
+
+    @Test
+    public void testLatencyAverageIsWeighted() {
+        endpoint.requestStarted();
+        endpoint.recordSuccess(TimeUnit.MILLISECONDS.toNanos(100));
+        double initial = endpoint.score();
+
+        endpoint.requestStarted();
+        endpoint.recordSuccess(0);
+
+        // A single fast sample lowers the average without replacing it
+        assertThat(endpoint.score()).isLessThan(initial).isGreaterThan(1.0);
+    }
+
+    private void fail(int times, long nowNanos) {
+        for (int i = 0; i < times; i++) {
+            endpoint.requestStarted();
+            endpoint.recordFailure(nowNanos);
+        }
+    }
+}
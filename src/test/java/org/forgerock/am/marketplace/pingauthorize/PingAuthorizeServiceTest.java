@@ -0,0 +1,233 @@
+/*
+ * Copyright 2024 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package org.forgerock.am.marketplace.pingauthorize;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeEndpoint.EJECTION_THRESHOLD;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class PingAuthorizeServiceTest {
+
+    private static final String HEALTHY_ENDPOINT = "https://healthy.example.com";
+    private static final String FAILING_ENDPOINT = "https://failing.example.com";
+    private static final String DENYING_ENDPOINT = "https://denying.example.com";
+    private static final String BLOCKING_ENDPOINT = "https://blocking.example.com";
+
+    @Mock
+    Handler handler;
+
+    PingAuthorizeService service;
+
+    // Response status per endpoint, and the number of requests each endpoint received
+    private final ConcurrentMap<String, Status> statuses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final CountDownLatch unblock = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setup() {
+        service = new PingAuthorizeService(handler);
+        given(handler.handle(any(), any())).willAnswer(invocation -> {
+            Request request = invocation.getArgument(1);
+            String endpoint = request.getUri().getScheme() + "://" + request.getUri().getHost();
+            requests.computeIfAbsent(endpoint, key -> new AtomicInteger()).incrementAndGet();
+            if (endpoint.equals(BLOCKING_ENDPOINT)) {
+                unblock.await();
+            }
+            Status status = statuses.getOrDefault(endpoint, Status.OK);
+            Response response = new Response(status);
+            response.setEntity(object(field("decision", endpoint.equals(DENYING_ENDPOINT) ? "DENY" : "PERMIT")));
+            return Response.newResponsePromise(response);
+        });
+    }
+
+    @Test
+    public void testFailsOverFromServerError() throws Exception {
+        statuses.put(FAILING_ENDPOINT, Status.BAD_GATEWAY);
+        List<String> endpoints = Arrays.asList(FAILING_ENDPOINT, HEALTHY_ENDPOINT);
+
+        for (int i = 0; i < 10; i++) {
+            JsonValue response = service.pingAZEvaluateDecisionRequest(endpoints, "access-token-123", json(object()));
+            assertThat(response.get("decision").asString()).isEqualTo("PERMIT");
+        }
+
+        // The failing endpoint is ejected once it reaches the failure threshold
+        assertThat(requestCount(FAILING_ENDPOINT)).isLessThanOrEqualTo(EJECTION_THRESHOLD);
+        assertThat(requestCount(HEALTHY_ENDPOINT)).isEqualTo(10);
+    }
+
+    @Test
+    public void testThrowsWhenAllEndpointsFail() {
+        statuses.put(FAILING_ENDPOINT, Status.BAD_GATEWAY);
+        statuses.put(HEALTHY_ENDPOINT, Status.SERVICE_UNAVAILABLE);
+        List<String> endpoints = Arrays.asList(FAILING_ENDPOINT, HEALTHY_ENDPOINT);
+
+        assertThatThrownBy(() -> service.pingAZEvaluateDecisionRequest(
+                endpoints, "access-token-123", json(object())))
+                .isInstanceOf(PingAuthorizeServiceException.class);
+
+        assertThat(requestCount(FAILING_ENDPOINT)).isEqualTo(1);
+        assertThat(requestCount(HEALTHY_ENDPOINT)).isEqualTo(1);
+    }
+
+    @Test
+    public void testDoesNotRetryClientError() {
+        statuses.put(FAILING_ENDPOINT, Status.FORBIDDEN);
+        statuses.put(HEALTHY_ENDPOINT, Status.FORBIDDEN);
+        List<String> endpoints = Arrays.asList(FAILING_ENDPOINT, HEALTHY_ENDPOINT);
+
+        assertThatThrownBy(() -> service.pingAZEvaluateDecisionRequest(
+                endpoints, "access-token-123", json(object())))
+                .isInstanceOf(PingAuthorizeServiceException.class);
+
+        verify(handler, times(1)).handle(any(), any());
+    }
+
+    @Test
+    public void testRejectsEmptyEndpointList() {
+        assertThatThrownBy(() -> service.pingAZEvaluateDecisionRequest(
+                Collections.emptyList(), "access-token-123", json(object())))
+                .isInstanceOf(PingAuthorizeServiceException.class);
+    }
+
+    @Test
+    public void testRealmNodesWithDifferentRatesShareLowestRate() {
+        int permitted = 0;
+
+        // Two realm-wide nodes in the same realm with different rates, called alternately
+        for (int i = 0; i < 20; i++) {
+            if (service.acquireRateLimitPermit("/realm", null, 20, 0)) {
+                permitted++;
+            }
+            if (service.acquireRateLimitPermit("/realm", null, 10, 0)) {
+                permitted++;
+            }
+        }
+
+        // The realm has one limit at the lowest configured rate, so the nodes cannot add up to more
+        assertThat(permitted).isBetween(10, 11);
+
+        JsonValue usage = service.getRateLimitUsage();
+        assertThat(usage.keys()).containsExactly("/realm");
+        assertThat(usage.get("/realm").get("permitsPerSecond").asInteger()).isEqualTo(10);
+        assertThat(usage.get("/realm").get("permitted").asLong()).isEqualTo(permitted);
+        assertThat(usage.get("/realm").get("throttled").asLong()).isEqualTo(40 - permitted);
+    }
+
+    @Test
+    public void testNodeRateLimitCountsAgainstRealm() {
+        // A realm-wide node sets the realm rate
+        assertThat(service.acquireRateLimitPermit("/realm", null, 10, 0)).isTrue();
+
+        // A node with its own higher rate is still held to the realm quota
+        int permitted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (service.acquireRateLimitPermit("/realm", "/realm#node", 20, 0)) {
+                permitted++;
+            }
+        }
+        assertThat(permitted).isBetween(9, 10);
+        assertThat(service.acquireRateLimitPermit("/realm", null, 10, 0)).isFalse();
+
+        JsonValue usage = service.getRateLimitUsage();
+        assertThat(usage.get("/realm").get("permitsPerSecond").asInteger()).isEqualTo(10);
+        assertThat(usage.get("/realm#node").get("permitsPerSecond").asInteger()).isEqualTo(20);
+    }
+
+    @Test
+    public void testNodeRateLimitDoesNotSetRealmRate() {
+        for (int i = 0; i < 5; i++) {
+            assertThat(service.acquireRateLimitPermit("/realm", "/realm#node", 5, 0)).isTrue();
+        }
+        assertThat(service.acquireRateLimitPermit("/realm", "/realm#node", 5, 0)).isFalse();
+
+        // The realm-wide node is not limited by the other node's own rate
+        assertThat(service.acquireRateLimitPermit("/realm", null, 10, 0)).isTrue();
+        assertThat(service.getRateLimitUsage().get("/realm").get("permitsPerSecond").asInteger()).isEqualTo(10);
+    }
+
+    @Test
+    public void testShadowCountsAgreedDisagreedAndFailed() {
+        statuses.put(FAILING_ENDPOINT, Status.BAD_GATEWAY);
+        JsonValue primary = json(object(field("decision", "PERMIT")));
+
+        service.submitShadowDecisionRequest(HEALTHY_ENDPOINT, "access-token-123", json(object()), primary, 0);
+        service.submitShadowDecisionRequest(DENYING_ENDPOINT, "access-token-123", json(object()), primary, 0);
+        service.submitShadowDecisionRequest(FAILING_ENDPOINT, "access-token-123", json(object()), primary, 0);
+        service.shutdown();
+
+        JsonValue metrics = service.getShadowEvaluationMetrics();
+        assertThat(metrics.get("submitted").asLong()).isEqualTo(3);
+        assertThat(metrics.get("dropped").asLong()).isEqualTo(0);
+        assertThat(metrics.get("agreed").asLong()).isEqualTo(1);
+        assertThat(metrics.get("disagreed").asLong()).isEqualTo(1);
+        assertThat(metrics.get("failed").asLong()).isEqualTo(1);
+    }
+
+    @Test
+    public void testShadowDroppedWhenQueueFull() {
+        JsonValue primary = json(object(field("decision", "PERMIT")));
+
+        // Two busy shadow threads plus a full queue of 256 leave no room for the last 10 requests
+        for (int i = 0; i < 2 + 256 + 10; i++) {
+            service.submitShadowDecisionRequest(BLOCKING_ENDPOINT, "access-token-123", json(object()), primary, 0);
+        }
+        unblock.countDown();
+        service.shutdown();
+
+        JsonValue metrics = service.getShadowEvaluationMetrics();
+        assertThat(metrics.get("submitted").asLong()).isEqualTo(2 + 256);
+        assertThat(metrics.get("dropped").asLong()).isEqualTo(10);
+    }
+
+    @Test
+    public void testShadowDroppedAfterShutdown() {
+        service.shutdown();
+
+        service.submitShadowDecisionRequest(HEALTHY_ENDPOINT, "access-token-123", json(object()),
+                                            json(object(field("decision", "PERMIT"))), 0);
+
+        assertThat(service.getShadowEvaluationMetrics().get("dropped").asLong()).isEqualTo(1);
+        assertThat(requestCount(HEALTHY_ENDPOINT)).isEqualTo(0);
+    }
+
+    private int requestCount(String endpoint) {
+        AtomicInteger count = requests.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+}
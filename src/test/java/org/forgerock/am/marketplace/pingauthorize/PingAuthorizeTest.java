@@ -11,21 +11,33 @@ package org.forgerock.am.marketplace.pingauthorize;
 import static java.util.Collections.emptyList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeNode.OutcomeProvider.CONTINUE_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeNode.OutcomeProvider.THROTTLED_OUTCOME_ID;
 
+import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeNode.RATELIMITATTR;
 import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeNode.STATEMENTCODESATTR;
 import static org.forgerock.am.marketplace.pingauthorize.PingAuthorizeNode.USECONTINUEATTR;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import javax.security.auth.callback.Callback;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.Action;
@@ -71,7 +83,8 @@ public class PingAuthorizeTest {
 
     @BeforeEach
     public void setup() throws Exception {
-        node = new PingAuthorizeNode(config, client);
+        given(realm.asPath()).willReturn("/realm");
+        node = new PingAuthorizeNode(config, realm, UUID.randomUUID(), client);
     }
 
     @ParameterizedTest
@@ -184,6 +197,335 @@ public class PingAuthorizeTest {
         assertThat(result.outcome).isEqualTo(CONTINUE_OUTCOME_ID);
     }
 
+    @Test
+    public void testAdditionalEndpointsPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.additionalEndpointUrls()).willReturn(Arrays.asList("second-endpoint-url", "third-endpoint-url"));
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.useContinue()).willReturn(false);
+
+        JsonValue response = json(object(
+                field("decision", "PERMIT")));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo("permit");
+        verify(client).pingAZEvaluateDecisionRequest(
+                eq(Arrays.asList("some-endpoint-url", "second-endpoint-url", "third-endpoint-url")),
+                eq("access-token-123"), any());
+    }
+
+    @Test
+    public void testThrottledPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.rateLimitPerSecond()).willReturn(10);
+        given(config.throttleBehavior()).willReturn(PingAuthorizeNode.ThrottleBehavior.THROTTLE);
+        given(client.acquireRateLimitPermit(any(), any(), anyInt(), anyLong())).willReturn(false);
+
+        // When
+        Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo(THROTTLED_OUTCOME_ID);
+        verify(client).acquireRateLimitPermit("/realm", null, 10, 0);
+        verify(client, never()).pingAZEvaluateDecisionRequest(any(), any(), any());
+    }
+
+    @Test
+    public void testNodeRateLimitPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.rateLimitPerSecond()).willReturn(10);
+        given(config.nodeRateLimit()).willReturn(true);
+        given(config.throttleBehavior()).willReturn(PingAuthorizeNode.ThrottleBehavior.THROTTLE);
+        given(client.acquireRateLimitPermit(any(), any(), anyInt(), anyLong())).willReturn(false);
+
+        // When
+        node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        verify(client).acquireRateLimitPermit(eq("/realm"), startsWith("/realm#"), eq(10), eq(0L));
+    }
+
+    @Test
+    public void testThrottledServesJourneyDecisionPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123"),
+                field(PINGONE_AUTHORIZE_ATTRIBUTE, "some-attribute-value")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.rateLimitPerSecond()).willReturn(10);
+        given(config.throttleBehavior()).willReturn(PingAuthorizeNode.ThrottleBehavior.CACHE);
+        given(client.acquireRateLimitPermit(any(), any(), anyInt(), anyLong())).willReturn(true, false);
+
+        JsonValue response = json(object(
+                field("decision", "DENY")));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        node.process(getContext(sharedState, json(object()), emptyList()));
+        Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo("deny");
+        verify(client, times(1)).pingAZEvaluateDecisionRequest(any(), any(), any());
+    }
+
+    @Test
+    public void testThrottledIgnoresDecisionForOtherInputsPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123"),
+                field(PINGONE_AUTHORIZE_ATTRIBUTE, "some-attribute-value")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.rateLimitPerSecond()).willReturn(10);
+        given(config.throttleBehavior()).willReturn(PingAuthorizeNode.ThrottleBehavior.CACHE);
+        given(client.acquireRateLimitPermit(any(), any(), anyInt(), anyLong())).willReturn(true, false);
+
+        JsonValue response = json(object(
+                field("decision", "PERMIT")));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        node.process(getContext(sharedState, json(object()), emptyList()));
+        sharedState.put(PINGONE_AUTHORIZE_ATTRIBUTE, "other-attribute-value");
+        Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo(THROTTLED_OUTCOME_ID);
+    }
+
+    @Test
+    public void testMemoizedDecisionPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123"),
+                field(PINGONE_AUTHORIZE_ATTRIBUTE, "some-attribute-value")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.memoizeDecisions()).willReturn(true);
+
+        JsonValue response = json(object(
+                field("decision", "PERMIT")));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        node.process(getContext(sharedState, json(object()), emptyList()));
+        Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo("permit");
+        assertThat(sharedState.isDefined(PingAuthorizeNode.DECISION_MEMO_KEY)).isTrue();
+        verify(client, times(1)).pingAZEvaluateDecisionRequest(any(), any(), any());
+
+        // When the attribute changes, the memoized decision no longer applies
+        sharedState.put(PINGONE_AUTHORIZE_ATTRIBUTE, "other-attribute-value");
+        node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        verify(client, times(2)).pingAZEvaluateDecisionRequest(any(), any(), any());
+
+        // When the attribute changes back, the first decision is still memoized
+        sharedState.put(PINGONE_AUTHORIZE_ATTRIBUTE, "some-attribute-value");
+        result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo("permit");
+        verify(client, times(2)).pingAZEvaluateDecisionRequest(any(), any(), any());
+    }
+
+    @Test
+    public void testMemoizedStatementsPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.statementCodes()).willReturn(Collections.singletonList("REVIEW"));
+        given(config.memoizeDecisions()).willReturn(true);
+
+        JsonValue response = json(object(
+                field("decision", "DENY"),
+                field("statements", array(
+                        object(
+                                field("code", "REVIEW"),
+                                field("payload", "some-payload")
+                        )))));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        node.process(getContext(sharedState, json(object()), emptyList()));
+        JsonValue transientState = json(object());
+        Action result = node.process(getContext(sharedState, transientState, emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo("REVIEW");
+        assertThat(transientState.get("decision").get("decision").asString()).isEqualTo("DENY");
+        assertThat(transientState.get("decision").get("statements").get(0).get("code").asString())
+                .isEqualTo("REVIEW");
+        assertThat(sharedState.get(PingAuthorizeNode.DECISION_MEMO_KEY).get(0).keys())
+                .containsExactlyInAnyOrder("digest", "decision", "statementCodes");
+        verify(client, times(1)).pingAZEvaluateDecisionRequest(any(), any(), any());
+    }
+
+    @Test
+    public void testMemoizedDecisionsAreCappedPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.memoizeDecisions()).willReturn(true);
+
+        JsonValue response = json(object(
+                field("decision", "PERMIT")));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        for (int i = 0; i < 9; i++) {
+            sharedState.put(PINGONE_AUTHORIZE_ATTRIBUTE, "attribute-value-" + i);
+            node.process(getContext(sharedState, json(object()), emptyList()));
+        }
+
+        // Then
+        assertThat(sharedState.get(PingAuthorizeNode.DECISION_MEMO_KEY).size()).isEqualTo(8);
+
+        // When the oldest decision has been evicted, the request is sent again
+        sharedState.put(PINGONE_AUTHORIZE_ATTRIBUTE, "attribute-value-0");
+        node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        verify(client, times(10)).pingAZEvaluateDecisionRequest(any(), any(), any());
+    }
+
+    @Test
+    public void testIndeterminateDecisionNotMemoizedPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123"),
+                field(PINGONE_AUTHORIZE_ATTRIBUTE, "some-attribute-value")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.memoizeDecisions()).willReturn(true);
+
+        JsonValue response = json(object(
+                field("decision", "INDETERMINATE")));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        node.process(getContext(sharedState, json(object()), emptyList()));
+        Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo("indeterminate");
+        verify(client, times(2)).pingAZEvaluateDecisionRequest(any(), any(), any());
+    }
+
+    @Test
+    public void testMemoizedOutputsPingAuthorize() {
+        given(config.memoizeDecisions()).willReturn(true);
+
+        OutputState[] outputs = node.getOutputs();
+
+        assertThat(outputs).hasSize(2);
+        assertThat(outputs[1].name).isEqualTo(PingAuthorizeNode.DECISION_MEMO_KEY);
+    }
+
+    @Test
+    public void testShadowEndpointPingAuthorize() throws Exception {
+        // Given
+        JsonValue sharedState = json(object(
+                field(REALM, "/realm"),
+                field(USERNAME, USER),
+                field("some-access-token", "access-token-123")
+        ));
+
+        given(config.endpointUrl()).willReturn("some-endpoint-url");
+        given(config.accessTokenAttribute()).willReturn("some-access-token");
+        given(config.attributeMap()).willReturn(Collections.singletonList(PINGONE_AUTHORIZE_ATTRIBUTE));
+        given(config.shadowEndpointUrl()).willReturn("shadow-endpoint-url");
+
+        JsonValue response = json(object(
+                field("decision", "PERMIT")));
+
+        when(client.pingAZEvaluateDecisionRequest(any(), any(), json(any()))).thenReturn(response);
+
+        // When
+        Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+        // Then
+        assertThat(result.outcome).isEqualTo("permit");
+        verify(client).submitShadowDecisionRequest(eq("shadow-endpoint-url"), eq("access-token-123"), any(),
+                                                   same(response), anyLong());
+    }
+
     @Test
     public void testGetInputs() {
         List<String> attributes = new ArrayList<>();
@@ -208,6 +550,7 @@ public class PingAuthorizeTest {
     @Test
     public void testGetOutputs() {
         OutputState[] outputs = node.getOutputs();
+        assertThat(outputs).hasSize(1);
         assertThat(outputs[0].name).isEqualTo("decision");
     }
 
@@ -228,6 +571,23 @@ public class PingAuthorizeTest {
         assertThat(outcomes.get(1).displayName).isEqualTo("Error");
     }
 
+    @Test
+    public void testRateLimitGetOutcomes() throws Exception {
+        PingAuthorizeNode.OutcomeProvider outcomeProvider = new PingAuthorizeNode.OutcomeProvider();
+
+        JsonValue nodeAttributes = json(object(
+            field(USECONTINUEATTR, true),
+            field(RATELIMITATTR, 10)));
+
+        PreferredLocales locales = new PreferredLocales();
+        List<OutcomeProvider.Outcome> outcomes = outcomeProvider.getOutcomes(locales, nodeAttributes);
+
+        assertThat(outcomes.get(0).id).isEqualTo("continue");
+        assertThat(outcomes.get(1).id).isEqualTo("throttled");
+        assertThat(outcomes.get(1).displayName).isEqualTo("Throttled");
+        assertThat(outcomes.get(2).id).isEqualTo("clientError");
+    }
+
     @Test
     public void testWithoutContinueGetOutcomes() throws Exception {
         PingAuthorizeNode.OutcomeProvider outcomeProvider = new PingAuthorizeNode.OutcomeProvider();
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 ForgeRock AS. All Rights Reserved
+ *
+ * Use of this code requires a commercial software license with ForgeRock AS.
+ * or with one of its affiliates. All use shall be exclusively subject
+ * to such license between the licensee and ForgeRock AS.
+ */
+
+package org.forgerock.am.marketplace.pingauthorize;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest {
+
+    private static final long NOW = TimeUnit.SECONDS.toNanos(100);
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void testStartsFull() {
+        TokenBucket bucket = new TokenBucket(10, NOW);
+
+        assertThat(acquire(bucket, 10, NOW)).isEqualTo(10);
+        assertThat(bucket.tryAcquire(NOW)).isEqualTo(INTERVAL);
+    }
+
+    @Test
+    public void testWaitUntilNextPermit() {
+        TokenBucket bucket = new TokenBucket(10, NOW);
+        acquire(bucket, 10, NOW);
+
+        assertThat(bucket.tryAcquire(NOW + INTERVAL - 1)).isEqualTo(1);
+        assertThat(bucket.tryAcquire(NOW + INTERVAL)).isZero();
+        assertThat(bucket.tryAcquire(NOW + INTERVAL)).isEqualTo(INTERVAL);
+    }
+
+    @Test
+    public void testRefillIsCappedAtCapacity() {
+        TokenBucket bucket = new TokenBucket(10, NOW);
+        acquire(bucket, 10, NOW);
+
+        long later = NOW + TimeUnit.SECONDS.toNanos(60);
+        assertThat(acquire(bucket, 20, later)).isEqualTo(10);
+    }
+
+    @Test
+    public void testPartialRefill() {
+        TokenBucket bucket = new TokenBucket(10, NOW);
+        acquire(bucket, 10, NOW);
+
+        assertThat(acquire(bucket, 10, NOW + 3 * INTERVAL)).isEqualTo(3);
+    }
+
+    @Test
+    public void testRateAboveOnePerNanosecondStillLimits() {
+        // The interval is capped at one nanosecond, so the capacity is permitsPerSecond nanoseconds
+        TokenBucket bucket = new TokenBucket(2_000_000_000, NOW);
+        long createdEmpty = NOW - 2_000_000_000L;
+
+        assertThat(bucket.tryAcquire(createdEmpty)).isEqualTo(1);
+        assertThat(bucket.tryAcquire(createdEmpty + 1)).isZero();
+        assertThat(bucket.tryAcquire(createdEmpty + 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void testLowerRate() {
+        TokenBucket bucket = new TokenBucket(20, NOW);
+
+        assertThat(bucket.lowerRate(10)).isTrue();
+        assertThat(bucket.lowerRate(15)).isFalse();
+        assertThat(bucket.lowerRate(10)).isFalse();
+        assertThat(bucket.getPermitsPerSecond()).isEqualTo(10);
+        assertThat(acquire(bucket, 20, NOW)).isEqualTo(10);
+        assertThat(bucket.tryAcquire(NOW)).isEqualTo(INTERVAL);
+    }
+
+    @Test
+    public void testLowerRateKeepsEmptyBucketEmpty() {
+        TokenBucket bucket = new TokenBucket(20, NOW);
+        acquire(bucket, 20, NOW);
+        bucket.lowerRate(10);
+
+        assertThat(bucket.tryAcquire(NOW)).isEqualTo(INTERVAL);
+    }
+
+    @Test
+    public void testUsageCounters() {
+        TokenBucket bucket = new TokenBucket(10, NOW);
+        bucket.recordUsage(true);
+        bucket.recordUsage(true);
+        bucket.recordUsage(false);
+
+        assertThat(bucket.getPermitted()).isEqualTo(2);
+        assertThat(bucket.getThrottled()).isEqualTo(1);
+    }
+
+    private int acquire(TokenBucket bucket, int attempts, long nowNanos) {
+        int acquired = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (bucket.tryAcquire(nowNanos) == 0) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+}